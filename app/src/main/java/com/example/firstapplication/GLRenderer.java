@@ -17,12 +17,15 @@ import javax.microedition.khronos.opengles.GL10;
 public class GLRenderer implements GLSurfaceView.Renderer {
     private final Context context;
     private ObjLoader objLoader;
+    private Octree octree;
+    private final ShaderManager shaderManager;
     private static final String TAG = "GLRenderer";
 
     private final float[] modelMatrix = new float[16];
     private final float[] viewMatrix = new float[16];
     private final float[] projectionMatrix = new float[16];
     private final float[] mvpMatrix = new float[16];
+    private final float[] cullMatrix = new float[16];
     private float[] lightModelMatrix = new float[16];
 
     private int program;
@@ -49,9 +52,13 @@ public class GLRenderer implements GLSurfaceView.Renderer {
     private FloatBuffer normalBuffer;
     private FloatBuffer textureBuffer;
 
+    // (first triangle, count) pairs of the octree cells in view, refreshed every frame
+    private int[] visibleRanges;
+
     public GLRenderer(Context context) {
         this.context = context;
         this.objLoader = new ObjLoader(context, "laurel.obj");
+        this.shaderManager = new ShaderManager(context);
 
         setupBuffers();
 
@@ -84,20 +91,11 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 
         Matrix.setLookAtM(viewMatrix, 0, eyeX, eyeY, eyeZ, lookX, lookY, lookZ, upX, upY, upZ);
 
-        final String vertexShaderCode = getVertexShader();
-        final String fragmentShaderCode = getFragmentShader();
-
-        final int vertexShaderHandle = loadShader(GLES20.GL_VERTEX_SHADER, vertexShaderCode);
-        final int fragmentShaderHandle = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
-
-        program = createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle, new String[] {"aPosition",  "aColor", "aNormal"});
-
-        final String pointVertexShader = getPointVertexShader();
-        final String pointFragmentShader = getPointFragmentShader();
+        // Program handles of a lost context are invalid, reuse cached binaries where possible
+        shaderManager.onSurfaceCreated();
 
-        final int pointVertexShaderHandle = loadShader(GLES20.GL_VERTEX_SHADER, pointVertexShader);
-        final int pointFragmentShaderHandle = loadShader(GLES20.GL_FRAGMENT_SHADER, pointFragmentShader);
-        pointProgramHandle = createAndLinkProgram(pointVertexShaderHandle, pointFragmentShaderHandle, new String[] {"aPosition"});
+        program = shaderManager.getProgram(getVertexShader(), getFragmentShader(), new String[] {"aPosition",  "aColor", "aNormal"});
+        pointProgramHandle = shaderManager.getProgram(getPointVertexShader(), getPointFragmentShader(), new String[] {"aPosition"});
     }
 
     @Override
@@ -151,13 +149,21 @@ public class GLRenderer implements GLSurfaceView.Renderer {
         Matrix.setIdentityM(modelMatrix, 0);
         Matrix.scaleM(modelMatrix,0,0.1f, 0.1f,0.1f);
 
-        for (int i = 0; i < vertexBuffer.capacity(); i = i + 9) {
-            vertexBuffer.position(i);
-            vertexBuffer.limit(i + 9);
-            colorBuffer.position(0);
-            normalBuffer.position(i);
-            normalBuffer.limit(i + 9);
-            drawTriangle(vertexBuffer, colorBuffer, normalBuffer);
+        // Only draw the octree cells inside the view frustum
+        Matrix.multiplyMM(cullMatrix, 0, viewMatrix, 0, modelMatrix, 0);
+        Matrix.multiplyMM(cullMatrix, 0, projectionMatrix, 0, cullMatrix, 0);
+        final int numRanges = octree.visibleRanges(cullMatrix, visibleRanges);
+
+        for (int r = 0; r < numRanges; r++) {
+            final int end = (visibleRanges[2 * r] + visibleRanges[2 * r + 1]) * 9;
+            for (int i = visibleRanges[2 * r] * 9; i < end; i = i + 9) {
+                vertexBuffer.position(i);
+                vertexBuffer.limit(i + 9);
+                colorBuffer.position(0);
+                normalBuffer.position(i);
+                normalBuffer.limit(i + 9);
+                drawTriangle(vertexBuffer, colorBuffer, normalBuffer);
+            }
         }
 
 //        GLES20.glUseProgram(pointProgramHandle);
@@ -193,20 +199,28 @@ public class GLRenderer implements GLSurfaceView.Renderer {
     }
 
     private void setupBuffers() {
+        // Build the octree and upload the model in octree order, so that every cell is one range
+        octree = new Octree(objLoader.positions);
+        visibleRanges = new int[2 * octree.getNumTriangles()];
+
+        final float[] positions = octree.sortTriangles(objLoader.positions);
+        final float[] normals = octree.sortTriangles(objLoader.normals);
+        final float[] textureCoordinates = octree.sortTriangles(objLoader.textureCoordinates);
+
         // Allocate buffers for model data
-        vertexBuffer = ByteBuffer.allocateDirect(objLoader.positions.length * mBytesPerFloat)
+        vertexBuffer = ByteBuffer.allocateDirect(positions.length * mBytesPerFloat)
                 .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        vertexBuffer.put(objLoader.positions).position(0);
+        vertexBuffer.put(positions).position(0);
 
         colorBuffer = createColorBuffer();
 
-        normalBuffer = ByteBuffer.allocateDirect(objLoader.normals.length * mBytesPerFloat)
+        normalBuffer = ByteBuffer.allocateDirect(normals.length * mBytesPerFloat)
                 .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        normalBuffer.put(objLoader.normals).position(0);
+        normalBuffer.put(normals).position(0);
 
-        textureBuffer = ByteBuffer.allocateDirect(objLoader.textureCoordinates.length * mBytesPerFloat)
+        textureBuffer = ByteBuffer.allocateDirect(textureCoordinates.length * mBytesPerFloat)
                 .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        textureBuffer.put(objLoader.textureCoordinates).position(0);
+        textureBuffer.put(textureCoordinates).position(0);
     }
 
     protected String getVertexShader() {
@@ -245,12 +259,15 @@ public class GLRenderer implements GLSurfaceView.Renderer {
                 + "varying vec3 vNormal;            \n"		// Interpolated normal for this fragment
 
                 + "void main() {                    \n"		// The entry point for our fragment shader
-//                + "   float distance = length(uLightPos - vPosition);                       \n"
-//                + "   vec3 lightVector = normalize(uLightPos - vPosition);                  \n"
-//                + "   float diffuse = max(dot(vNormal, lightVector), 0.1);                  \n"
-//                + "   diffuse = diffuse * (1.0 / (1.0 + (0.25 * distance * distance)));     \n"
-//                + "   gl_FragColor = vColor * diffuse;                                      \n"
+                + "#ifdef LIGHTING                  \n"     // Diffuse variant, selected with the LIGHTING define
+                + "   float distance = length(uLightPos - vPosition);                       \n"
+                + "   vec3 lightVector = normalize(uLightPos - vPosition);                  \n"
+                + "   float diffuse = max(dot(vNormal, lightVector), 0.1);                  \n"
+                + "   diffuse = diffuse * (1.0 / (1.0 + (0.25 * distance * distance)));     \n"
+                + "   gl_FragColor = vColor * diffuse;                                      \n"
+                + "#else                            \n"
                 + "   gl_FragColor = vColor;        \n"
+                + "#endif                           \n"
                 + "}                                \n";
 
         return fragmentShader;
@@ -279,74 +296,6 @@ public class GLRenderer implements GLSurfaceView.Renderer {
         return pointFragmentShader;
     }
 
-    private int loadShader(int type, String shaderCode) {
-        int shaderHandle = GLES20.glCreateShader(type);
-
-        if (shaderHandle != 0) {
-            // Pass in the shader source
-            GLES20.glShaderSource(shaderHandle, shaderCode);
-
-            // Compile the shader
-            GLES20.glCompileShader(shaderHandle);
-
-            // Get the compilation status
-            final int[] compileStatus = new int[1];
-            GLES20.glGetShaderiv(shaderHandle, GLES20.GL_COMPILE_STATUS, compileStatus, 0);
-
-            // If the compilation failed, delete the shader
-            if (compileStatus[0] == 0) {
-                GLES20.glDeleteShader(shaderHandle);
-                shaderHandle = 0;
-            }
-        }
-
-        if (shaderHandle == 0) {
-            throw new RuntimeException("Error creating fragment shader.");
-        }
-
-        return shaderHandle;
-    }
-
-    private int createAndLinkProgram(final int vertexShaderHandle, final int fragmentShaderHandle, final String[] attributes) {
-        int programHandle = GLES20.glCreateProgram();
-
-        if (programHandle != 0) {
-            // Bind the vertex shader to the program
-            GLES20.glAttachShader(programHandle, vertexShaderHandle);
-
-            // Bind the fragment shader to the program
-            GLES20.glAttachShader(programHandle, fragmentShaderHandle);
-
-            // Bind attributes
-            if (attributes != null) {
-                final int size = attributes.length;
-                for (int i = 0; i < size; i++) {
-                    GLES20.glBindAttribLocation(programHandle, i, attributes[i]);
-                }
-            }
-
-            // Link the two shaders together into a program
-            GLES20.glLinkProgram(programHandle);
-
-            // Get the link status
-            final int[] linkStatus = new int[1];
-            GLES20.glGetProgramiv(programHandle, GLES20.GL_LINK_STATUS, linkStatus, 0);
-
-            // If the link failed, delete the program
-            if (linkStatus[0] == 0) {
-                Log.e(TAG, "Error compiling program: " + GLES20.glGetProgramInfoLog(programHandle));
-                GLES20.glDeleteProgram(programHandle);
-                programHandle = 0;
-            }
-        }
-
-        if (programHandle == 0) {
-            throw new RuntimeException("Error creating program.");
-        }
-
-        return programHandle;
-    }
-
     private void drawLight() {
         final int pointMVPMatrixHandle = GLES20.glGetUniformLocation(pointProgramHandle, "uMVPMatrix");
         final int pointPositionHandle = GLES20.glGetAttribLocation(pointProgramHandle, "aPosition");
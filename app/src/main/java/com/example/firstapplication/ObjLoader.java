@@ -5,6 +5,7 @@ import android.util.Log;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.Vector;
 
@@ -30,13 +31,24 @@ public final class ObjLoader {
     }
 
     public ObjLoader(Context context, String file) {
+        this(openAsset(context, file), file);
+    }
+
+    /**
+     * Loads the model from a stream, which lets plain JVM tests read the .obj without a Context.
+     * The stream is closed once the file has been read.
+     */
+    public ObjLoader(InputStream stream, String file) {
         Vector<Float> vertices = new Vector<>();
         Vector<Float> normals = new Vector<>();
         Vector<Float> textures = new Vector<>();
 
         BufferedReader reader = null;
         try {
-            InputStreamReader in = new InputStreamReader(context.getAssets().open(file));
+            if (stream == null) {
+                throw new IOException("Cannot open " + file);
+            }
+            InputStreamReader in = new InputStreamReader(stream);
             reader = new BufferedReader(in);
 
             // Read file until EOF
@@ -164,4 +176,14 @@ public final class ObjLoader {
             }
         }
     }
+
+    private static InputStream openAsset(Context context, String file) {
+        try {
+            return context.getAssets().open(file);
+        } catch (IOException e) {
+            // Cannot open file
+            Log.e("ObjLoader", "Error opening OBJ file: " + file, e);
+            return null;
+        }
+    }
 }
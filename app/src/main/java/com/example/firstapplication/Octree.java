@@ -0,0 +1,576 @@
+package com.example.firstapplication;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loose octree over the triangle soup of ObjLoader, for visibility and region queries
+ * without a linear scan over all positions.
+ *
+ * A triangle is stored in the deepest cell whose size is at least the triangle's extent, picked
+ * by the center of its bounding box. With a looseness of 2 every triangle lies inside the loose
+ * bounds of its cell, so it never needs to be split or stored twice.
+ *
+ * Nodes are kept in flat arrays in depth-first order. A node is followed by its descendants, and
+ * the triangles of a whole subtree are contiguous in octree order, so a renderer that uploads
+ * its buffers through sortTriangles() can draw a visible cell with one range. Queries test the
+ * tight bounds of each subtree and skip a culled subtree by jumping past its descendants.
+ */
+public final class Octree {
+    public static final int DEFAULT_MAX_DEPTH = 6;
+    private static final int MAX_DEPTH = 9;
+
+    private static final int OUTSIDE = 0;
+    private static final int INTERSECT = 1;
+    private static final int INSIDE = 2;
+
+    private final int numTriangles;
+    private final int numNodes;
+
+    // Original index of each triangle in octree order
+    private final int[] triangles;
+    // Bounds of each triangle in octree order: min x, y, z, max x, y, z
+    private final float[] triangleBounds;
+
+    // Tight bounds of all triangles in the subtree: min x, y, z, max x, y, z
+    private final float[] nodeBounds;
+    // First triangle of the node, in octree order, and the number of triangles stored in the node itself
+    private final int[] nodeFirstTriangle;
+    private final int[] nodeTriangleCount;
+    // End of the triangles of the whole subtree
+    private final int[] nodeTriangleEnd;
+    // Index of the next node that is not a descendant
+    private final int[] nodeSkip;
+
+    public Octree(float[] positions) {
+        this(positions, DEFAULT_MAX_DEPTH, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Builds the octree from positions (x, y, z per vertex, three vertices per triangle).
+     * Bounds and cells of the triangles are computed on the given number of threads.
+     */
+    public Octree(final float[] positions, final int maxDepth, int threads) {
+        if (maxDepth < 0 || maxDepth > MAX_DEPTH || threads <= 0) {
+            throw new IllegalArgumentException("Invalid depth " + maxDepth + " or thread count " + threads);
+        }
+
+        numTriangles = positions.length / 9;
+        triangles = new int[numTriangles];
+        triangleBounds = new float[numTriangles * 6];
+
+        final float[] bounds = new float[numTriangles * 6];
+        final long[] keys = new long[numTriangles];
+        final int chunks = Math.max(1, Math.min(threads, numTriangles));
+        final ExecutorService executor = chunks > 1 ? Executors.newFixedThreadPool(chunks) : null;
+
+        try {
+            // Triangle bounds and the bounds of every chunk
+            final float[] chunkBounds = new float[chunks * 6];
+            final List<Callable<Void>> boundsTasks = new ArrayList<>(chunks);
+            for (int c = 0; c < chunks; c++) {
+                final int chunk = c;
+                final int first = (int) ((long) numTriangles * c / chunks);
+                final int last = (int) ((long) numTriangles * (c + 1) / chunks);
+                boundsTasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        computeBounds(positions, bounds, first, last, chunkBounds, chunk * 6);
+                        return null;
+                    }
+                });
+            }
+            run(executor, boundsTasks);
+
+            final float[] sceneBounds = emptyBounds();
+            for (int c = 0; c < chunks; c++) {
+                union(sceneBounds, 0, chunkBounds, c * 6);
+            }
+
+            // Root cell is the cube around the scene
+            final float rootHalf = Math.max(1e-6f, 0.5f * Math.max(sceneBounds[3] - sceneBounds[0],
+                    Math.max(sceneBounds[4] - sceneBounds[1], sceneBounds[5] - sceneBounds[2])));
+            final float rootMinX = 0.5f * (sceneBounds[0] + sceneBounds[3]) - rootHalf;
+            final float rootMinY = 0.5f * (sceneBounds[1] + sceneBounds[4]) - rootHalf;
+            final float rootMinZ = 0.5f * (sceneBounds[2] + sceneBounds[5]) - rootHalf;
+
+            // Cell of every triangle, as a sort key in depth-first order
+            final List<Callable<Void>> keyTasks = new ArrayList<>(chunks);
+            for (int c = 0; c < chunks; c++) {
+                final int first = (int) ((long) numTriangles * c / chunks);
+                final int last = (int) ((long) numTriangles * (c + 1) / chunks);
+                keyTasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        computeKeys(bounds, keys, first, last, maxDepth, rootMinX, rootMinY, rootMinZ, rootHalf);
+                        return null;
+                    }
+                });
+            }
+            run(executor, keyTasks);
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+
+        Arrays.parallelSort(keys);
+
+        // Flatten the sorted cells into nodes, growing the arrays as nodes are opened
+        int capacity = Math.max(64, numTriangles / 2);
+        int[] firstTriangle = new int[capacity];
+        int[] triangleCount = new int[capacity];
+        int[] triangleEnd = new int[capacity];
+        int[] skip = new int[capacity];
+        int[] parent = new int[capacity];
+
+        // Path from the root to the current node: node index and cell at every level
+        final int[] pathNode = new int[maxDepth + 1];
+        final int[] pathCell = new int[maxDepth + 1];
+        int pathLength = 0;
+        int nodes = 0;
+
+        for (int t = 0; t < numTriangles; t++) {
+            final int level = (int) ((keys[t] >>> 32) & 0xf);
+            final int paddedCell = (int) (keys[t] >>> 36);
+            final int triangle = (int) keys[t];
+
+            // Close the nodes that are not on the path to this triangle's cell
+            while (pathLength > 0) {
+                final int l = pathLength - 1;
+                if (l <= level && pathCell[l] == (paddedCell >>> (3 * (maxDepth - l)))) {
+                    break;
+                }
+                triangleEnd[pathNode[l]] = t;
+                skip[pathNode[l]] = nodes;
+                pathLength--;
+            }
+
+            // Open the missing nodes down to the triangle's level
+            while (pathLength <= level) {
+                if (nodes == capacity) {
+                    capacity *= 2;
+                    firstTriangle = Arrays.copyOf(firstTriangle, capacity);
+                    triangleCount = Arrays.copyOf(triangleCount, capacity);
+                    triangleEnd = Arrays.copyOf(triangleEnd, capacity);
+                    skip = Arrays.copyOf(skip, capacity);
+                    parent = Arrays.copyOf(parent, capacity);
+                }
+
+                final int l = pathLength;
+                pathCell[l] = paddedCell >>> (3 * (maxDepth - l));
+                pathNode[l] = nodes;
+                parent[nodes] = l > 0 ? pathNode[l - 1] : -1;
+                firstTriangle[nodes] = t;
+                nodes++;
+                pathLength++;
+            }
+
+            triangleCount[pathNode[level]]++;
+            triangles[t] = triangle;
+            System.arraycopy(bounds, triangle * 6, triangleBounds, t * 6, 6);
+        }
+        while (pathLength > 0) {
+            pathLength--;
+            triangleEnd[pathNode[pathLength]] = numTriangles;
+            skip[pathNode[pathLength]] = nodes;
+        }
+
+        numNodes = nodes;
+        nodeFirstTriangle = Arrays.copyOf(firstTriangle, nodes);
+        nodeTriangleCount = Arrays.copyOf(triangleCount, nodes);
+        nodeTriangleEnd = Arrays.copyOf(triangleEnd, nodes);
+        nodeSkip = Arrays.copyOf(skip, nodes);
+
+        // Children come after their parent, so a reverse walk merges bounds bottom-up
+        nodeBounds = new float[nodes * 6];
+        for (int n = 0; n < nodes; n++) {
+            System.arraycopy(emptyBounds(), 0, nodeBounds, n * 6, 6);
+        }
+        for (int n = nodes - 1; n >= 0; n--) {
+            final int first = nodeFirstTriangle[n];
+            for (int t = first; t < first + nodeTriangleCount[n]; t++) {
+                union(nodeBounds, n * 6, triangleBounds, t * 6);
+            }
+            if (parent[n] >= 0) {
+                union(nodeBounds, parent[n] * 6, nodeBounds, n * 6);
+            }
+        }
+    }
+
+    public int getNumTriangles() {
+        return numTriangles;
+    }
+
+    public int getNumNodes() {
+        return numNodes;
+    }
+
+    /** Original triangle index for every triangle in octree order. */
+    public int[] getTriangleOrder() {
+        return triangles.clone();
+    }
+
+    /**
+     * Reorders per-vertex data with 9 floats per triangle (positions, normals, texture coordinates
+     * of ObjLoader) into octree order, which is the order the ranges of visibleRanges() refer to.
+     */
+    public float[] sortTriangles(float[] data) {
+        final float[] sorted = new float[numTriangles * 9];
+        for (int t = 0; t < numTriangles; t++) {
+            System.arraycopy(data, triangles[t] * 9, sorted, t * 9, 9);
+        }
+        return sorted;
+    }
+
+    /**
+     * Triangles whose bounds overlap the box. Writes original triangle indices to out,
+     * which must hold getNumTriangles() entries, and returns their number.
+     */
+    public int queryAabb(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, int[] out) {
+        return query(new Aabb(minX, minY, minZ, maxX, maxY, maxZ), out, false);
+    }
+
+    /** Triangles whose bounds overlap the sphere, see queryAabb(). */
+    public int querySphere(float x, float y, float z, float radius, int[] out) {
+        return query(new Sphere(x, y, z, radius), out, false);
+    }
+
+    /** Triangles whose bounds are not outside the view frustum of the column-major MVP matrix, see queryAabb(). */
+    public int queryFrustum(float[] mvpMatrix, int[] out) {
+        return query(new Frustum(mvpMatrix), out, false);
+    }
+
+    /**
+     * Triangles in the view frustum as (first, count) ranges in octree order, merged where
+     * adjacent. Returns the number of ranges, out must hold 2 * getNumTriangles() entries.
+     */
+    public int visibleRanges(float[] mvpMatrix, int[] out) {
+        return query(new Frustum(mvpMatrix), out, true) / 2;
+    }
+
+    /**
+     * Same as visibleRanges(), additionally dropping cells that are completely behind a coarse
+     * depth buffer of the occluders, e.g. interior parts hidden by the body. The depth buffer
+     * uses the layout of SoftwareRasterizer.getDepthBuffer() and is rendered with the same matrix.
+     * Depth is only sampled at pixel centers, so holes smaller than a pixel can hide a cell.
+     */
+    public int visibleRanges(float[] mvpMatrix, float[] occluderDepth, int width, int height, int[] out) {
+        return query(new Occlusion(mvpMatrix, occluderDepth, width, height), out, true) / 2;
+    }
+
+    private int query(Volume volume, int[] out, boolean ranges) {
+        int count = 0;
+        int n = 0;
+        while (n < numNodes) {
+            final int result = volume.classify(nodeBounds, n * 6);
+            if (result == OUTSIDE) {
+                n = nodeSkip[n];
+                continue;
+            }
+
+            if (result == INSIDE) {
+                count = emit(out, count, ranges, nodeFirstTriangle[n], nodeTriangleEnd[n]);
+                n = nodeSkip[n];
+                continue;
+            }
+
+            final int first = nodeFirstTriangle[n];
+            for (int t = first; t < first + nodeTriangleCount[n]; t++) {
+                if (volume.classify(triangleBounds, t * 6) != OUTSIDE) {
+                    count = emit(out, count, ranges, t, t + 1);
+                }
+            }
+            n++;
+        }
+        return count;
+    }
+
+    private int emit(int[] out, int count, boolean ranges, int first, int end) {
+        if (!ranges) {
+            for (int t = first; t < end; t++) {
+                out[count++] = triangles[t];
+            }
+            return count;
+        }
+
+        if (count > 0 && out[count - 2] + out[count - 1] == first) {
+            out[count - 1] += end - first;
+            return count;
+        }
+        out[count++] = first;
+        out[count++] = end - first;
+        return count;
+    }
+
+    private static void computeBounds(float[] positions, float[] bounds, int first, int last, float[] chunkBounds, int chunkOffset) {
+        System.arraycopy(emptyBounds(), 0, chunkBounds, chunkOffset, 6);
+        for (int t = first; t < last; t++) {
+            final int p = t * 9;
+            final int b = t * 6;
+            for (int i = 0; i < 3; i++) {
+                bounds[b + i] = Math.min(positions[p + i], Math.min(positions[p + 3 + i], positions[p + 6 + i]));
+                bounds[b + 3 + i] = Math.max(positions[p + i], Math.max(positions[p + 3 + i], positions[p + 6 + i]));
+            }
+            union(chunkBounds, chunkOffset, bounds, b);
+        }
+    }
+
+    /**
+     * Sort key of every triangle: its cell at maxDepth resolution with the bits below its own
+     * level cleared, then its level, then its index. Sorting the keys gives depth-first order.
+     */
+    private static void computeKeys(float[] bounds, long[] keys, int first, int last, int maxDepth,
+                                    float rootMinX, float rootMinY, float rootMinZ, float rootHalf) {
+        final int cells = 1 << maxDepth;
+        final float scale = cells / (2.0f * rootHalf);
+
+        for (int t = first; t < last; t++) {
+            final int b = t * 6;
+            final float halfExtent = 0.5f * Math.max(bounds[b + 3] - bounds[b],
+                    Math.max(bounds[b + 4] - bounds[b + 1], bounds[b + 5] - bounds[b + 2]));
+
+            // Deepest level whose cell half size still covers the triangle's half extent
+            int level = maxDepth;
+            while (level > 0 && halfExtent > rootHalf / (1 << level)) {
+                level--;
+            }
+
+            final int x = cell(0.5f * (bounds[b] + bounds[b + 3]) - rootMinX, scale, cells);
+            final int y = cell(0.5f * (bounds[b + 1] + bounds[b + 4]) - rootMinY, scale, cells);
+            final int z = cell(0.5f * (bounds[b + 2] + bounds[b + 5]) - rootMinZ, scale, cells);
+
+            final int shift = 3 * (maxDepth - level);
+            final long paddedCell = (interleave(x, y, z) >>> shift) << shift;
+            keys[t] = (paddedCell << 36) | ((long) level << 32) | (t & 0xffffffffL);
+        }
+    }
+
+    private static int cell(float offset, float scale, int cells) {
+        return Math.max(0, Math.min(cells - 1, (int) (offset * scale)));
+    }
+
+    private static long interleave(int x, int y, int z) {
+        long code = 0;
+        for (int i = 0; i < MAX_DEPTH; i++) {
+            code |= (long) ((x >> i) & 1) << (3 * i + 2);
+            code |= (long) ((y >> i) & 1) << (3 * i + 1);
+            code |= (long) ((z >> i) & 1) << (3 * i);
+        }
+        return code;
+    }
+
+    private static float[] emptyBounds() {
+        return new float[] {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+    }
+
+    private static void union(float[] dst, int d, float[] src, int s) {
+        for (int i = 0; i < 3; i++) {
+            dst[d + i] = Math.min(dst[d + i], src[s + i]);
+            dst[d + 3 + i] = Math.max(dst[d + 3 + i], src[s + 3 + i]);
+        }
+    }
+
+    private static void run(ExecutorService executor, List<Callable<Void>> tasks) {
+        if (executor == null) {
+            for (Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return;
+        }
+
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Octree build interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error building octree", e.getCause());
+        }
+    }
+
+    /** Query shape, classifies a box given as min x, y, z, max x, y, z at offset o. */
+    private interface Volume {
+        int classify(float[] bounds, int o);
+    }
+
+    private static final class Aabb implements Volume {
+        private final float minX, minY, minZ, maxX, maxY, maxZ;
+
+        Aabb(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+            this.minX = minX;
+            this.minY = minY;
+            this.minZ = minZ;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.maxZ = maxZ;
+        }
+
+        @Override
+        public int classify(float[] b, int o) {
+            if (b[o] > maxX || b[o + 3] < minX || b[o + 1] > maxY || b[o + 4] < minY || b[o + 2] > maxZ || b[o + 5] < minZ) {
+                return OUTSIDE;
+            }
+            if (b[o] >= minX && b[o + 3] <= maxX && b[o + 1] >= minY && b[o + 4] <= maxY && b[o + 2] >= minZ && b[o + 5] <= maxZ) {
+                return INSIDE;
+            }
+            return INTERSECT;
+        }
+    }
+
+    private static final class Sphere implements Volume {
+        private final float x, y, z, radiusSquared;
+
+        Sphere(float x, float y, float z, float radius) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.radiusSquared = radius * radius;
+        }
+
+        @Override
+        public int classify(float[] b, int o) {
+            // Closest point of the box to the center
+            final float dx = x - Math.max(b[o], Math.min(x, b[o + 3]));
+            final float dy = y - Math.max(b[o + 1], Math.min(y, b[o + 4]));
+            final float dz = z - Math.max(b[o + 2], Math.min(z, b[o + 5]));
+            if (dx * dx + dy * dy + dz * dz > radiusSquared) {
+                return OUTSIDE;
+            }
+
+            // Farthest corner of the box from the center
+            final float fx = Math.max(x - b[o], b[o + 3] - x);
+            final float fy = Math.max(y - b[o + 1], b[o + 4] - y);
+            final float fz = Math.max(z - b[o + 2], b[o + 5] - z);
+            return fx * fx + fy * fy + fz * fz <= radiusSquared ? INSIDE : INTERSECT;
+        }
+    }
+
+    private static class Frustum implements Volume {
+        // Left, right, bottom, top, near, far planes as a, b, c, d with ax + by + cz + d >= 0 inside
+        private final float[] planes = new float[24];
+
+        Frustum(float[] m) {
+            for (int i = 0; i < 3; i++) {
+                for (int j = 0; j < 4; j++) {
+                    final float w = m[j * 4 + 3];
+                    final float v = m[j * 4 + i];
+                    planes[(2 * i) * 4 + j] = w + v;
+                    planes[(2 * i + 1) * 4 + j] = w - v;
+                }
+            }
+        }
+
+        @Override
+        public int classify(float[] b, int o) {
+            int result = INSIDE;
+            for (int p = 0; p < 24; p += 4) {
+                final float a = planes[p];
+                final float bb = planes[p + 1];
+                final float c = planes[p + 2];
+                final float d = planes[p + 3];
+
+                // Corners farthest along and against the plane normal
+                final float far = a * (a >= 0 ? b[o + 3] : b[o]) + bb * (bb >= 0 ? b[o + 4] : b[o + 1]) + c * (c >= 0 ? b[o + 5] : b[o + 2]) + d;
+                if (far < 0.0f) {
+                    return OUTSIDE;
+                }
+                final float near = a * (a >= 0 ? b[o] : b[o + 3]) + bb * (bb >= 0 ? b[o + 1] : b[o + 4]) + c * (c >= 0 ? b[o + 2] : b[o + 5]) + d;
+                if (near < 0.0f) {
+                    result = INTERSECT;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class Occlusion extends Frustum {
+        private final float[] m;
+        private final float[] depth;
+        private final int width;
+        private final int height;
+
+        Occlusion(float[] m, float[] depth, int width, int height) {
+            super(m);
+            if (depth.length < width * height) {
+                throw new IllegalArgumentException("Depth buffer smaller than " + width + "x" + height);
+            }
+            this.m = m;
+            this.depth = depth;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public int classify(float[] b, int o) {
+            final int result = super.classify(b, o);
+            if (result == OUTSIDE || isOccluded(b, o)) {
+                return OUTSIDE;
+            }
+
+            // Never accept a whole subtree, its cells may still be hidden one by one
+            return INTERSECT;
+        }
+
+        private boolean isOccluded(float[] b, int o) {
+            float minX = Float.MAX_VALUE;
+            float minY = Float.MAX_VALUE;
+            float maxX = -Float.MAX_VALUE;
+            float maxY = -Float.MAX_VALUE;
+            float minDepth = Float.MAX_VALUE;
+
+            for (int corner = 0; corner < 8; corner++) {
+                final float x = (corner & 1) == 0 ? b[o] : b[o + 3];
+                final float y = (corner & 2) == 0 ? b[o + 1] : b[o + 4];
+                final float z = (corner & 4) == 0 ? b[o + 2] : b[o + 5];
+
+                final float w = m[3] * x + m[7] * y + m[11] * z + m[15];
+                if (w <= 1e-6f) {
+                    // Crosses the eye plane, cannot be projected
+                    return false;
+                }
+
+                // Same viewport transform as SoftwareRasterizer
+                final float sx = ((m[0] * x + m[4] * y + m[8] * z + m[12]) / w + 1.0f) * 0.5f * width;
+                final float sy = (1.0f - (m[1] * x + m[5] * y + m[9] * z + m[13]) / w) * 0.5f * height;
+                final float sz = ((m[2] * x + m[6] * y + m[10] * z + m[14]) / w) * 0.5f + 0.5f;
+
+                minX = Math.min(minX, sx);
+                minY = Math.min(minY, sy);
+                maxX = Math.max(maxX, sx);
+                maxY = Math.max(maxY, sy);
+                minDepth = Math.min(minDepth, sz);
+            }
+
+            // Grow the rectangle by a pixel since depth is only known at pixel centers
+            final int x0 = Math.max(0, (int) Math.floor(minX) - 1);
+            final int y0 = Math.max(0, (int) Math.floor(minY) - 1);
+            final int x1 = Math.min(width - 1, (int) Math.ceil(maxX) + 1);
+            final int y1 = Math.min(height - 1, (int) Math.ceil(maxY) + 1);
+            if (x0 > x1 || y0 > y1) {
+                return false;
+            }
+
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    if (depth[y * width + x] >= minDepth) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+}
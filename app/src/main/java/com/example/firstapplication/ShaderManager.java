@@ -0,0 +1,342 @@
+package com.example.firstapplication;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+/**
+ * Compiles and links shader programs, keeping linked program binaries in the app's cache dir
+ * so that later surface creations (app start, EGL context loss on resume) can skip the compile.
+ *
+ * Programs are keyed by a hash of their sources, attribute bindings, variant defines and the
+ * GL driver, so a changed shader or a driver update simply misses the cache. If the driver
+ * rejects a stored binary, the program is compiled from source again and the binary replaced.
+ *
+ * Binaries are only cached on an OpenGL ES 3 context, through the ES 3.0 core glProgramBinary and
+ * glGetProgramBinary. GL_OES_get_program_binary on an ES 2 only driver is not used, the Java
+ * bindings do not expose its entry points, so such devices always compile from source.
+ */
+public final class ShaderManager {
+    private static final String TAG = "ShaderManager";
+    private static final String CACHE_DIR = "shaders";
+
+    // Header of a cached binary: magic, file format version, binary format, binary length
+    private static final int BINARY_MAGIC = 0x47504231; // "GPB1"
+    private static final int BINARY_VERSION = 1;
+    private static final int BINARY_HEADER_SIZE = 16;
+
+    private final File cacheDir;
+
+    // Programs linked on the current EGL context, keyed the same way as the binaries on disk
+    private final HashMap<String, Integer> programs = new HashMap<>();
+
+    private boolean binarySupported;
+    private String driverId = "";
+
+    public ShaderManager(Context context) {
+        this.cacheDir = new File(context.getCacheDir(), CACHE_DIR);
+    }
+
+    /**
+     * Must be called from onSurfaceCreated. All program handles of a previous context are gone
+     * at this point, so only the binaries on disk are kept.
+     */
+    public void onSurfaceCreated() {
+        programs.clear();
+
+        final String version = GLES20.glGetString(GLES20.GL_VERSION);
+        driverId = GLES20.glGetString(GLES20.GL_VENDOR) + "/" + GLES20.glGetString(GLES20.GL_RENDERER) + "/" + version;
+
+        // GLES30 calls are only backed by the driver on an ES 3 context
+        final boolean es3 = version != null && version.startsWith("OpenGL ES 3");
+        binarySupported = false;
+
+        if (es3) {
+            // A driver can expose the entry points but support no binary format at all
+            final int[] numFormats = new int[1];
+            GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, numFormats, 0);
+            binarySupported = GLES20.glGetError() == GLES20.GL_NO_ERROR && numFormats[0] > 0;
+        }
+
+        if (binarySupported && !cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            Log.w(TAG, "Cannot create shader cache dir: " + cacheDir);
+            binarySupported = false;
+        }
+    }
+
+    /**
+     * Returns a linked program for the given sources. Each define is turned into a
+     * "#define NAME" line in front of both sources, which selects the matching variant
+     * (e.g. LIGHTING) without touching the shader strings themselves.
+     */
+    public int getProgram(final String vertexShaderCode, final String fragmentShaderCode, final String[] attributes, final String... defines) {
+        final String key = programKey(vertexShaderCode, fragmentShaderCode, attributes, defines);
+
+        final Integer cached = programs.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        final String header = defineHeader(defines);
+        final File binaryFile = new File(cacheDir, key + ".bin");
+
+        int programHandle = 0;
+        if (binarySupported) {
+            programHandle = loadProgramBinary(binaryFile);
+        }
+
+        if (programHandle == 0) {
+            final int vertexShaderHandle = loadShader(GLES20.GL_VERTEX_SHADER, header + vertexShaderCode);
+            final int fragmentShaderHandle = loadShader(GLES20.GL_FRAGMENT_SHADER, header + fragmentShaderCode);
+
+            programHandle = createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle, attributes);
+
+            // The program keeps its own copy of the compiled code
+            GLES20.glDeleteShader(vertexShaderHandle);
+            GLES20.glDeleteShader(fragmentShaderHandle);
+
+            if (binarySupported) {
+                saveProgramBinary(programHandle, binaryFile);
+            }
+        }
+
+        programs.put(key, programHandle);
+        return programHandle;
+    }
+
+    private String programKey(final String vertexShaderCode, final String fragmentShaderCode, final String[] attributes, final String[] defines) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(driverId).append('\0');
+        sb.append(vertexShaderCode).append('\0');
+        sb.append(fragmentShaderCode).append('\0');
+        if (attributes != null) {
+            for (String attribute : attributes) {
+                sb.append(attribute).append(',');
+            }
+        }
+        sb.append('\0');
+        if (defines != null) {
+            for (String define : defines) {
+                sb.append(define).append(',');
+            }
+        }
+
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(sb.toString().getBytes(Charset.forName("UTF-8")));
+            final StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is always available on Android, fall back to the weaker hash just in case
+            return Integer.toHexString(sb.toString().hashCode());
+        }
+    }
+
+    private String defineHeader(final String[] defines) {
+        if (defines == null || defines.length == 0) {
+            return "";
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        for (String define : defines) {
+            sb.append("#define ").append(define).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private int loadProgramBinary(final File binaryFile) {
+        if (!binaryFile.isFile()) {
+            return 0;
+        }
+
+        final int format;
+        final byte[] data;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(binaryFile));
+            final int magic = in.readInt();
+            final int version = in.readInt();
+            format = in.readInt();
+            final int length = in.readInt();
+
+            // Never trust the stored length, a truncated or corrupted file is treated as rejected
+            if (magic != BINARY_MAGIC || version != BINARY_VERSION || length <= 0
+                    || length != binaryFile.length() - BINARY_HEADER_SIZE) {
+                throw new IOException("Invalid program binary header");
+            }
+
+            data = new byte[length];
+            in.readFully(data);
+        } catch (IOException e) {
+            Log.w(TAG, "Error reading program binary: " + binaryFile, e);
+            binaryFile.delete();
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing program binary", e);
+                }
+            }
+        }
+
+        final ByteBuffer binary = ByteBuffer.allocateDirect(data.length).order(ByteOrder.nativeOrder());
+        binary.put(data).position(0);
+
+        int programHandle = GLES20.glCreateProgram();
+        if (programHandle != 0) {
+            GLES30.glProgramBinary(programHandle, format, binary, data.length);
+
+            // Get the link status, the driver may reject binaries from another driver version
+            final int[] linkStatus = new int[1];
+            GLES20.glGetProgramiv(programHandle, GLES20.GL_LINK_STATUS, linkStatus, 0);
+
+            if (GLES20.glGetError() != GLES20.GL_NO_ERROR || linkStatus[0] == 0) {
+                Log.w(TAG, "Program binary rejected, compiling from source: " + binaryFile.getName());
+                GLES20.glDeleteProgram(programHandle);
+                binaryFile.delete();
+                programHandle = 0;
+            }
+        }
+
+        return programHandle;
+    }
+
+    private void saveProgramBinary(final int programHandle, final File binaryFile) {
+        final int[] length = new int[1];
+        GLES20.glGetProgramiv(programHandle, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0) {
+            return;
+        }
+
+        final ByteBuffer binary = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        final int[] binaryLength = new int[1];
+        final int[] format = new int[1];
+        GLES30.glGetProgramBinary(programHandle, length[0], binaryLength, 0, format, 0, binary);
+
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || binaryLength[0] <= 0) {
+            Log.w(TAG, "Cannot retrieve program binary");
+            return;
+        }
+
+        final byte[] data = new byte[binaryLength[0]];
+        binary.position(0);
+        binary.get(data);
+
+        // Write to a temporary file first so that a crash never leaves a truncated binary behind
+        final File tmpFile = new File(binaryFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmpFile));
+            out.writeInt(BINARY_MAGIC);
+            out.writeInt(BINARY_VERSION);
+            out.writeInt(format[0]);
+            out.writeInt(data.length);
+            out.write(data);
+            out.close();
+            out = null;
+
+            if (!tmpFile.renameTo(binaryFile)) {
+                Log.w(TAG, "Cannot store program binary: " + binaryFile);
+                tmpFile.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Error writing program binary: " + binaryFile, e);
+            tmpFile.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing program binary", e);
+                }
+            }
+        }
+    }
+
+    private int loadShader(int type, String shaderCode) {
+        int shaderHandle = GLES20.glCreateShader(type);
+
+        if (shaderHandle != 0) {
+            // Pass in the shader source
+            GLES20.glShaderSource(shaderHandle, shaderCode);
+
+            // Compile the shader
+            GLES20.glCompileShader(shaderHandle);
+
+            // Get the compilation status
+            final int[] compileStatus = new int[1];
+            GLES20.glGetShaderiv(shaderHandle, GLES20.GL_COMPILE_STATUS, compileStatus, 0);
+
+            // If the compilation failed, delete the shader
+            if (compileStatus[0] == 0) {
+                Log.e(TAG, "Error compiling shader: " + GLES20.glGetShaderInfoLog(shaderHandle));
+                GLES20.glDeleteShader(shaderHandle);
+                shaderHandle = 0;
+            }
+        }
+
+        if (shaderHandle == 0) {
+            throw new RuntimeException("Error creating " + (type == GLES20.GL_VERTEX_SHADER ? "vertex" : "fragment") + " shader.");
+        }
+
+        return shaderHandle;
+    }
+
+    private int createAndLinkProgram(final int vertexShaderHandle, final int fragmentShaderHandle, final String[] attributes) {
+        int programHandle = GLES20.glCreateProgram();
+
+        if (programHandle != 0) {
+            // Bind the vertex shader to the program
+            GLES20.glAttachShader(programHandle, vertexShaderHandle);
+
+            // Bind the fragment shader to the program
+            GLES20.glAttachShader(programHandle, fragmentShaderHandle);
+
+            // Bind attributes
+            if (attributes != null) {
+                final int size = attributes.length;
+                for (int i = 0; i < size; i++) {
+                    GLES20.glBindAttribLocation(programHandle, i, attributes[i]);
+                }
+            }
+
+            // Link the two shaders together into a program
+            GLES20.glLinkProgram(programHandle);
+
+            // Get the link status
+            final int[] linkStatus = new int[1];
+            GLES20.glGetProgramiv(programHandle, GLES20.GL_LINK_STATUS, linkStatus, 0);
+
+            // If the link failed, delete the program
+            if (linkStatus[0] == 0) {
+                Log.e(TAG, "Error compiling program: " + GLES20.glGetProgramInfoLog(programHandle));
+                GLES20.glDeleteProgram(programHandle);
+                programHandle = 0;
+            }
+        }
+
+        if (programHandle == 0) {
+            throw new RuntimeException("Error creating program.");
+        }
+
+        return programHandle;
+    }
+}
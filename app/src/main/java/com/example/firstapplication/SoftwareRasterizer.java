@@ -0,0 +1,518 @@
+package com.example.firstapplication;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference rasterizer in plain Java, so that what GLRenderer draws can be checked off-device.
+ *
+ * It takes the same position/normal data and column-major matrices as GLRenderer and follows
+ * the GL pipeline: near plane clipping, backface culling (counter-clockwise front faces),
+ * depth test (GL_LESS) and the flat or LIGHTING fragment shader. The image is split into tiles
+ * which are rasterized in parallel. Each tile is owned by one thread and walks its triangles in
+ * submission order, so the output does not depend on the number of threads.
+ *
+ * Pixels are ARGB, row 0 is the top of the image.
+ */
+public final class SoftwareRasterizer {
+    private static final int TILE_SIZE = 32;
+
+    // Clip space vertex: clip x, y, z, w, eye x, y, z, eye normal x, y, z
+    private static final int CLIP_STRIDE = 10;
+    // Screen space vertex: x, y, depth, 1/w, then the eye position and normal divided by w
+    private static final int SCREEN_STRIDE = 10;
+    private static final int TRIANGLE_STRIDE = 3 * SCREEN_STRIDE;
+
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+    private final int threads;
+    private final ExecutorService executor;
+
+    private final int[] colorBuffer;
+    private final float[] depthBuffer;
+
+    private int clearColor = toArgb(0.5f, 0.5f, 0.5f, 0.5f);
+    private final float[] vertexColor = new float[] {1.0f, 1.0f, 0.0f, 1.0f};
+    private float[] lightPosInEyeSpace;
+    private boolean cullFace = true;
+
+    public SoftwareRasterizer(int width, int height) {
+        this(width, height, Runtime.getRuntime().availableProcessors());
+    }
+
+    public SoftwareRasterizer(int width, int height, int threads) {
+        if (width <= 0 || height <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height + " or thread count " + threads);
+        }
+
+        this.width = width;
+        this.height = height;
+        this.tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.threads = threads;
+        this.executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+
+        this.colorBuffer = new int[width * height];
+        this.depthBuffer = new float[width * height];
+        clear();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /** Same as glClearColor, applied on the next clear(). */
+    public void setClearColor(float r, float g, float b, float a) {
+        clearColor = toArgb(r, g, b, a);
+    }
+
+    /** Constant vertex color, GLRenderer passes the same color for every vertex. */
+    public void setColor(float r, float g, float b, float a) {
+        vertexColor[0] = r;
+        vertexColor[1] = g;
+        vertexColor[2] = b;
+        vertexColor[3] = a;
+    }
+
+    /** Enables the LIGHTING shader variant with the light in eye space, null renders flat color. */
+    public void setLightPosition(float[] lightPosInEyeSpace) {
+        this.lightPosInEyeSpace = lightPosInEyeSpace == null ? null
+                : new float[] {lightPosInEyeSpace[0], lightPosInEyeSpace[1], lightPosInEyeSpace[2]};
+    }
+
+    public void setCullFace(boolean cullFace) {
+        this.cullFace = cullFace;
+    }
+
+    public void clear() {
+        Arrays.fill(colorBuffer, clearColor);
+        Arrays.fill(depthBuffer, 1.0f);
+    }
+
+    public int[] getColorBuffer() {
+        return colorBuffer;
+    }
+
+    public float[] getDepthBuffer() {
+        return depthBuffer;
+    }
+
+    /** Draws the whole content of the buffers, whatever their current position and limit. */
+    public void drawTriangles(FloatBuffer vertexBuffer, FloatBuffer normalBuffer, float[] mvMatrix, float[] mvpMatrix) {
+        drawTriangles(toArray(vertexBuffer), normalBuffer == null ? null : toArray(normalBuffer), mvMatrix, mvpMatrix);
+    }
+
+    /**
+     * Draws positions (x, y, z per vertex, three vertices per triangle) like glDrawArrays(GL_TRIANGLES).
+     * Normals are only needed when a light position is set.
+     */
+    public void drawTriangles(final float[] positions, final float[] normals, final float[] mvMatrix, final float[] mvpMatrix) {
+        final int numTriangles = positions.length / 9;
+        if (numTriangles == 0) {
+            return;
+        }
+        if (lightPosInEyeSpace != null && (normals == null || normals.length < numTriangles * 9)) {
+            throw new IllegalArgumentException("Lighting needs a normal per vertex");
+        }
+
+        final boolean lighting = lightPosInEyeSpace != null;
+        final int chunks = Math.min(threads, numTriangles);
+        final Bins[] bins = new Bins[chunks];
+
+        // Transform, clip, cull and bin contiguous ranges of triangles in parallel
+        final List<Callable<Void>> setupTasks = new ArrayList<>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            final int chunk = c;
+            final int first = (int) ((long) numTriangles * c / chunks);
+            final int last = (int) ((long) numTriangles * (c + 1) / chunks);
+            setupTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    bins[chunk] = setup(positions, normals, lighting, mvMatrix, mvpMatrix, first, last);
+                    return null;
+                }
+            });
+        }
+        run(setupTasks);
+
+        // Rasterize tiles in parallel, each tile reads the bins in chunk order
+        final AtomicInteger nextTile = new AtomicInteger();
+        final List<Callable<Void>> rasterTasks = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            rasterTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    int tile;
+                    while ((tile = nextTile.getAndIncrement()) < tilesX * tilesY) {
+                        rasterizeTile(tile, bins, lighting);
+                    }
+                    return null;
+                }
+            });
+        }
+        run(rasterTasks);
+    }
+
+    /** Stops the worker threads, the rasterizer cannot draw afterwards. */
+    public void release() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Number of pixels where any ARGB channel differs by more than the tolerance,
+     * meant for comparing against golden images.
+     */
+    public static int countDifferentPixels(int[] expected, int[] actual, int tolerance) {
+        if (expected.length != actual.length) {
+            throw new IllegalArgumentException("Image sizes differ: " + expected.length + " and " + actual.length);
+        }
+
+        int different = 0;
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                final int e = (expected[i] >>> shift) & 0xff;
+                final int a = (actual[i] >>> shift) & 0xff;
+                if (Math.abs(e - a) > tolerance) {
+                    different++;
+                    break;
+                }
+            }
+        }
+        return different;
+    }
+
+    private void run(List<Callable<Void>> tasks) {
+        if (executor == null) {
+            for (Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return;
+        }
+
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Rendering interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error rendering", e.getCause());
+        }
+    }
+
+    /** Triangles of one chunk in screen space, with per tile lists of triangle indices. */
+    private static final class Bins {
+        float[] triangles = new float[64 * TRIANGLE_STRIDE];
+        int numTriangles;
+        final int[][] tileTriangles;
+        final int[] tileCounts;
+
+        Bins(int numTiles) {
+            tileTriangles = new int[numTiles][];
+            tileCounts = new int[numTiles];
+        }
+
+        int addTriangle() {
+            if ((numTriangles + 1) * TRIANGLE_STRIDE > triangles.length) {
+                triangles = Arrays.copyOf(triangles, triangles.length * 2);
+            }
+            return numTriangles++;
+        }
+
+        void addToTile(int tile, int triangle) {
+            int[] list = tileTriangles[tile];
+            if (list == null) {
+                list = tileTriangles[tile] = new int[16];
+            } else if (tileCounts[tile] == list.length) {
+                list = tileTriangles[tile] = Arrays.copyOf(list, list.length * 2);
+            }
+            list[tileCounts[tile]++] = triangle;
+        }
+    }
+
+    private Bins setup(float[] positions, float[] normals, boolean lighting, float[] mv, float[] mvp, int first, int last) {
+        final Bins bins = new Bins(tilesX * tilesY);
+
+        // Triangle in clip space and the polygon left after clipping against the near plane
+        final float[] in = new float[3 * CLIP_STRIDE];
+        final float[] out = new float[4 * CLIP_STRIDE];
+
+        for (int t = first; t < last; t++) {
+            for (int v = 0; v < 3; v++) {
+                final int p = t * 9 + v * 3;
+                final int o = v * CLIP_STRIDE;
+                final float x = positions[p];
+                final float y = positions[p + 1];
+                final float z = positions[p + 2];
+
+                in[o] = mvp[0] * x + mvp[4] * y + mvp[8] * z + mvp[12];
+                in[o + 1] = mvp[1] * x + mvp[5] * y + mvp[9] * z + mvp[13];
+                in[o + 2] = mvp[2] * x + mvp[6] * y + mvp[10] * z + mvp[14];
+                in[o + 3] = mvp[3] * x + mvp[7] * y + mvp[11] * z + mvp[15];
+
+                if (lighting) {
+                    // vPosition = vec3(uMVMatrix * aPosition), vNormal = vec3(uMVMatrix * vec4(aNormal, 0.0))
+                    in[o + 4] = mv[0] * x + mv[4] * y + mv[8] * z + mv[12];
+                    in[o + 5] = mv[1] * x + mv[5] * y + mv[9] * z + mv[13];
+                    in[o + 6] = mv[2] * x + mv[6] * y + mv[10] * z + mv[14];
+
+                    final float nx = normals[p];
+                    final float ny = normals[p + 1];
+                    final float nz = normals[p + 2];
+                    in[o + 7] = mv[0] * nx + mv[4] * ny + mv[8] * nz;
+                    in[o + 8] = mv[1] * nx + mv[5] * ny + mv[9] * nz;
+                    in[o + 9] = mv[2] * nx + mv[6] * ny + mv[10] * nz;
+                }
+            }
+
+            final int numVertices = clipNear(in, out);
+
+            // Fan triangulate what is left of the triangle
+            for (int v = 1; v + 1 < numVertices; v++) {
+                addTriangle(bins, out, 0, v * CLIP_STRIDE, (v + 1) * CLIP_STRIDE);
+            }
+        }
+
+        return bins;
+    }
+
+    /** Clips the triangle against z >= -w, returns the number of vertices written to out. */
+    private static int clipNear(float[] in, float[] out) {
+        int count = 0;
+        for (int v = 0; v < 3; v++) {
+            final int a = v * CLIP_STRIDE;
+            final int b = ((v + 1) % 3) * CLIP_STRIDE;
+            final float da = in[a + 2] + in[a + 3];
+            final float db = in[b + 2] + in[b + 3];
+
+            if (da >= 0.0f) {
+                System.arraycopy(in, a, out, count * CLIP_STRIDE, CLIP_STRIDE);
+                count++;
+            }
+            if ((da >= 0.0f) != (db >= 0.0f)) {
+                final float s = da / (da - db);
+                final int o = count * CLIP_STRIDE;
+                for (int i = 0; i < CLIP_STRIDE; i++) {
+                    out[o + i] = in[a + i] + s * (in[b + i] - in[a + i]);
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void addTriangle(Bins bins, float[] clip, int v0, int v1, int v2) {
+        final float w0 = clip[v0 + 3];
+        final float w1 = clip[v1 + 3];
+        final float w2 = clip[v2 + 3];
+        if (w0 <= 0.0f || w1 <= 0.0f || w2 <= 0.0f) {
+            return;
+        }
+
+        // Viewport transform, y is flipped so that row 0 is the top of the image
+        final float x0 = (clip[v0] / w0 + 1.0f) * 0.5f * width;
+        final float y0 = (1.0f - clip[v0 + 1] / w0) * 0.5f * height;
+        final float x1 = (clip[v1] / w1 + 1.0f) * 0.5f * width;
+        final float y1 = (1.0f - clip[v1 + 1] / w1) * 0.5f * height;
+        final float x2 = (clip[v2] / w2 + 1.0f) * 0.5f * width;
+        final float y2 = (1.0f - clip[v2 + 1] / w2) * 0.5f * height;
+
+        // Counter-clockwise in NDC is clockwise (negative area) once y is flipped
+        final float area = (x1 - x0) * (y2 - y0) - (x2 - x0) * (y1 - y0);
+        if (area == 0.0f || (cullFace && area > 0.0f)) {
+            return;
+        }
+
+        final float minX = Math.min(x0, Math.min(x1, x2));
+        final float maxX = Math.max(x0, Math.max(x1, x2));
+        final float minY = Math.min(y0, Math.min(y1, y2));
+        final float maxY = Math.max(y0, Math.max(y1, y2));
+        if (maxX < 0.0f || maxY < 0.0f || minX >= width || minY >= height) {
+            return;
+        }
+
+        // Store with positive area so that the rasterizer only handles one winding
+        final int triangle = bins.addTriangle();
+        final int o = triangle * TRIANGLE_STRIDE;
+        final boolean swap = area < 0.0f;
+        storeVertex(bins.triangles, o, clip, v0, x0, y0);
+        storeVertex(bins.triangles, o + SCREEN_STRIDE, clip, swap ? v2 : v1, swap ? x2 : x1, swap ? y2 : y1);
+        storeVertex(bins.triangles, o + 2 * SCREEN_STRIDE, clip, swap ? v1 : v2, swap ? x1 : x2, swap ? y1 : y2);
+
+        final int tileX0 = Math.max(0, (int) minX) / TILE_SIZE;
+        final int tileX1 = Math.min(width - 1, (int) maxX) / TILE_SIZE;
+        final int tileY0 = Math.max(0, (int) minY) / TILE_SIZE;
+        final int tileY1 = Math.min(height - 1, (int) maxY) / TILE_SIZE;
+        for (int ty = tileY0; ty <= tileY1; ty++) {
+            for (int tx = tileX0; tx <= tileX1; tx++) {
+                bins.addToTile(ty * tilesX + tx, triangle);
+            }
+        }
+    }
+
+    private static void storeVertex(float[] triangles, int o, float[] clip, int v, float x, float y) {
+        final float invW = 1.0f / clip[v + 3];
+        triangles[o] = x;
+        triangles[o + 1] = y;
+        triangles[o + 2] = (clip[v + 2] * invW) * 0.5f + 0.5f;
+        triangles[o + 3] = invW;
+        for (int i = 4; i < CLIP_STRIDE; i++) {
+            triangles[o + i] = clip[v + i] * invW;
+        }
+    }
+
+    private void rasterizeTile(int tile, Bins[] bins, boolean lighting) {
+        final int tileMinX = (tile % tilesX) * TILE_SIZE;
+        final int tileMinY = (tile / tilesX) * TILE_SIZE;
+        final int tileMaxX = Math.min(width, tileMinX + TILE_SIZE) - 1;
+        final int tileMaxY = Math.min(height, tileMinY + TILE_SIZE) - 1;
+
+        for (Bins chunk : bins) {
+            final int[] list = chunk.tileTriangles[tile];
+            final int count = chunk.tileCounts[tile];
+            for (int i = 0; i < count; i++) {
+                rasterizeTriangle(chunk.triangles, list[i] * TRIANGLE_STRIDE, lighting, tileMinX, tileMinY, tileMaxX, tileMaxY);
+            }
+        }
+    }
+
+    private void rasterizeTriangle(float[] tri, int o, boolean lighting, int tileMinX, int tileMinY, int tileMaxX, int tileMaxY) {
+        final int a = o;
+        final int b = o + SCREEN_STRIDE;
+        final int c = o + 2 * SCREEN_STRIDE;
+        final float x0 = tri[a], y0 = tri[a + 1];
+        final float x1 = tri[b], y1 = tri[b + 1];
+        final float x2 = tri[c], y2 = tri[c + 1];
+        final float area = (x1 - x0) * (y2 - y0) - (x2 - x0) * (y1 - y0);
+
+        final int minX = Math.max(tileMinX, (int) Math.floor(Math.min(x0, Math.min(x1, x2))));
+        final int maxX = Math.min(tileMaxX, (int) Math.ceil(Math.max(x0, Math.max(x1, x2))));
+        final int minY = Math.max(tileMinY, (int) Math.floor(Math.min(y0, Math.min(y1, y2))));
+        final int maxY = Math.min(tileMaxY, (int) Math.ceil(Math.max(y0, Math.max(y1, y2))));
+        if (minX > maxX || minY > maxY) {
+            return;
+        }
+
+        // Top-left fill rule, so that pixels on shared edges are drawn only once
+        final boolean topLeft12 = isTopLeft(x1, y1, x2, y2);
+        final boolean topLeft20 = isTopLeft(x2, y2, x0, y0);
+        final boolean topLeft01 = isTopLeft(x0, y0, x1, y1);
+
+        final float invArea = 1.0f / area;
+        final float z0 = tri[a + 2], z1 = tri[b + 2], z2 = tri[c + 2];
+
+        for (int y = minY; y <= maxY; y++) {
+            final float py = y + 0.5f;
+            for (int x = minX; x <= maxX; x++) {
+                final float px = x + 0.5f;
+
+                final float e12 = edge(x1, y1, x2, y2, px, py);
+                final float e20 = edge(x2, y2, x0, y0, px, py);
+                final float e01 = edge(x0, y0, x1, y1, px, py);
+                if (!inside(e12, topLeft12) || !inside(e20, topLeft20) || !inside(e01, topLeft01)) {
+                    continue;
+                }
+
+                final float l0 = e12 * invArea;
+                final float l1 = e20 * invArea;
+                final float l2 = e01 * invArea;
+
+                // Depth is affine in screen space, GL_LESS against the cleared value of 1.0
+                final float depth = l0 * z0 + l1 * z1 + l2 * z2;
+                final int index = y * width + x;
+                if (depth < 0.0f || depth > 1.0f || depth >= depthBuffer[index]) {
+                    continue;
+                }
+                depthBuffer[index] = depth;
+
+                if (!lighting) {
+                    colorBuffer[index] = toArgb(vertexColor[0], vertexColor[1], vertexColor[2], vertexColor[3]);
+                    continue;
+                }
+
+                // Perspective correct varyings
+                final float p0 = l0 * tri[a + 3];
+                final float p1 = l1 * tri[b + 3];
+                final float p2 = l2 * tri[c + 3];
+                final float norm = 1.0f / (p0 + p1 + p2);
+
+                final float posX = (p0 * tri[a + 4] + p1 * tri[b + 4] + p2 * tri[c + 4]) * norm;
+                final float posY = (p0 * tri[a + 5] + p1 * tri[b + 5] + p2 * tri[c + 5]) * norm;
+                final float posZ = (p0 * tri[a + 6] + p1 * tri[b + 6] + p2 * tri[c + 6]) * norm;
+                final float normalX = (p0 * tri[a + 7] + p1 * tri[b + 7] + p2 * tri[c + 7]) * norm;
+                final float normalY = (p0 * tri[a + 8] + p1 * tri[b + 8] + p2 * tri[c + 8]) * norm;
+                final float normalZ = (p0 * tri[a + 9] + p1 * tri[b + 9] + p2 * tri[c + 9]) * norm;
+
+                final float diffuse = diffuse(posX, posY, posZ, normalX, normalY, normalZ);
+                colorBuffer[index] = toArgb(vertexColor[0] * diffuse, vertexColor[1] * diffuse,
+                        vertexColor[2] * diffuse, vertexColor[3] * diffuse);
+            }
+        }
+    }
+
+    /** Same computation as the LIGHTING variant of GLRenderer's fragment shader. */
+    private float diffuse(float posX, float posY, float posZ, float normalX, float normalY, float normalZ) {
+        final float lx = lightPosInEyeSpace[0] - posX;
+        final float ly = lightPosInEyeSpace[1] - posY;
+        final float lz = lightPosInEyeSpace[2] - posZ;
+        final float distance = (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+        if (distance == 0.0f) {
+            return 1.0f;
+        }
+
+        float diffuse = Math.max((normalX * lx + normalY * ly + normalZ * lz) / distance, 0.1f);
+        diffuse = diffuse * (1.0f / (1.0f + (0.25f * distance * distance)));
+        return diffuse;
+    }
+
+    private static float edge(float ax, float ay, float bx, float by, float px, float py) {
+        return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+    }
+
+    private static boolean isTopLeft(float ax, float ay, float bx, float by) {
+        final float dy = by - ay;
+        return dy < 0.0f || (dy == 0.0f && bx > ax);
+    }
+
+    private static boolean inside(float edge, boolean topLeft) {
+        return edge > 0.0f || (edge == 0.0f && topLeft);
+    }
+
+    private static int toArgb(float r, float g, float b, float a) {
+        return (toByte(a) << 24) | (toByte(r) << 16) | (toByte(g) << 8) | toByte(b);
+    }
+
+    private static int toByte(float value) {
+        final float clamped = Math.max(0.0f, Math.min(1.0f, value));
+        return (int) (clamped * 255.0f + 0.5f);
+    }
+
+    private static float[] toArray(FloatBuffer buffer) {
+        final FloatBuffer all = buffer.duplicate();
+        all.clear();
+        final float[] array = new float[all.remaining()];
+        all.get(array);
+        return array;
+    }
+}
@@ -0,0 +1,354 @@
+package com.example.firstapplication;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks the octree queries against a linear scan over the triangles of laurel.obj.
+ *
+ * Run with -Doctree.benchmark=true to also report query latency next to the linear scan.
+ */
+public class OctreeTest {
+    private static final int QUERIES = 200;
+
+    private ObjLoader objLoader;
+    private Octree octree;
+    private int numTriangles;
+    private float[] sceneMin;
+    private float[] sceneMax;
+
+    @Before
+    public void setUp() throws IOException {
+        objLoader = new ObjLoader(new FileInputStream("src/main/assets/laurel.obj"), "laurel.obj");
+        octree = new Octree(objLoader.positions);
+        numTriangles = objLoader.positions.length / 9;
+
+        sceneMin = new float[] {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        sceneMax = new float[] {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int i = 0; i < objLoader.positions.length; i++) {
+            sceneMin[i % 3] = Math.min(sceneMin[i % 3], objLoader.positions[i]);
+            sceneMax[i % 3] = Math.max(sceneMax[i % 3], objLoader.positions[i]);
+        }
+    }
+
+    @Test
+    public void build_keepsEveryTriangleOnce() {
+        assertEquals(numTriangles, octree.getNumTriangles());
+        assertTrue(octree.getNumNodes() > 1);
+
+        final int[] order = octree.getTriangleOrder();
+        final boolean[] seen = new boolean[numTriangles];
+        for (int triangle : order) {
+            assertFalse(seen[triangle]);
+            seen[triangle] = true;
+        }
+
+        final float[] sorted = octree.sortTriangles(objLoader.positions);
+        for (int t = 0; t < numTriangles; t++) {
+            for (int i = 0; i < 9; i++) {
+                assertEquals(objLoader.positions[order[t] * 9 + i], sorted[t * 9 + i], 0.0f);
+            }
+        }
+    }
+
+    @Test
+    public void build_isIndependentOfThreadCount() {
+        final Octree single = new Octree(objLoader.positions, Octree.DEFAULT_MAX_DEPTH, 1);
+        final Octree parallel = new Octree(objLoader.positions, Octree.DEFAULT_MAX_DEPTH, 4);
+        assertEquals(single.getNumNodes(), parallel.getNumNodes());
+        assertArrayEquals(single.getTriangleOrder(), parallel.getTriangleOrder());
+    }
+
+    @Test
+    public void emptyModel_hasNoTriangles() {
+        final Octree empty = new Octree(new float[0]);
+        assertEquals(0, empty.getNumNodes());
+        assertEquals(0, empty.querySphere(0.0f, 0.0f, 0.0f, 1.0f, new int[0]));
+    }
+
+    @Test
+    public void queryAabb_matchesLinearScan() {
+        final Random random = new Random(1);
+        final int[] out = new int[numTriangles];
+        for (int q = 0; q < QUERIES; q++) {
+            final float[] box = randomBox(random);
+            final int count = octree.queryAabb(box[0], box[1], box[2], box[3], box[4], box[5], out);
+            assertArrayEquals(linearAabb(box), sorted(out, count));
+        }
+    }
+
+    @Test
+    public void querySphere_matchesLinearScan() {
+        final Random random = new Random(2);
+        final int[] out = new int[numTriangles];
+        for (int q = 0; q < QUERIES; q++) {
+            final float[] sphere = randomSphere(random);
+            final int count = octree.querySphere(sphere[0], sphere[1], sphere[2], sphere[3], out);
+            assertArrayEquals(linearSphere(sphere), sorted(out, count));
+        }
+    }
+
+    @Test
+    public void queryFrustum_matchesLinearScan_andVisibleRanges() {
+        final Random random = new Random(3);
+        final int[] out = new int[numTriangles];
+        final int[] ranges = new int[2 * numTriangles];
+        final int[] order = octree.getTriangleOrder();
+
+        for (int q = 0; q < QUERIES; q++) {
+            final float[] mvp = randomFrustum(random);
+            final int count = octree.queryFrustum(mvp, out);
+            final int[] expected = linearFrustum(mvp);
+            assertArrayEquals(expected, sorted(out, count));
+
+            final int numRanges = octree.visibleRanges(mvp, ranges);
+            final int[] fromRanges = new int[numTriangles];
+            int n = 0;
+            for (int r = 0; r < numRanges; r++) {
+                for (int t = ranges[2 * r]; t < ranges[2 * r] + ranges[2 * r + 1]; t++) {
+                    fromRanges[n++] = order[t];
+                }
+            }
+            assertArrayEquals(expected, sorted(fromRanges, n));
+        }
+    }
+
+    @Test
+    public void visibleRanges_dropsOccludedCells() {
+        // A large wall in front of a small box, both facing the camera looking down -z
+        final float[] wall = quad(-1.0f, -1.0f, 1.0f, 1.0f, -2.0f);
+        final float[] hidden = quad(-0.1f, -0.1f, 0.1f, 0.1f, -4.0f);
+        final float[] positions = new float[wall.length + hidden.length];
+        System.arraycopy(wall, 0, positions, 0, wall.length);
+        System.arraycopy(hidden, 0, positions, wall.length, hidden.length);
+
+        final Octree scene = new Octree(positions, Octree.DEFAULT_MAX_DEPTH, 2);
+        final float[] mvp = perspective(1.0f, 10.0f);
+
+        final SoftwareRasterizer occluders = new SoftwareRasterizer(32, 32, 1);
+        occluders.drawTriangles(wall, null, mvp, mvp);
+
+        final int[] ranges = new int[2 * scene.getNumTriangles()];
+        assertEquals(4, countTriangles(ranges, scene.visibleRanges(mvp, ranges)));
+
+        final int numRanges = scene.visibleRanges(mvp, occluders.getDepthBuffer(), 32, 32, ranges);
+        final int[] order = scene.getTriangleOrder();
+        final int[] visible = new int[4];
+        int n = 0;
+        for (int r = 0; r < numRanges; r++) {
+            for (int t = ranges[2 * r]; t < ranges[2 * r] + ranges[2 * r + 1]; t++) {
+                visible[n++] = order[t];
+            }
+        }
+        assertArrayEquals(new int[] {0, 1}, sorted(visible, n));
+    }
+
+    @Test
+    public void queryLatency_benchmark() {
+        assumeTrue(Boolean.getBoolean("octree.benchmark"));
+
+        final Random random = new Random(4);
+        final int[] out = new int[numTriangles];
+        final float[][] boxes = new float[QUERIES][];
+        final float[][] spheres = new float[QUERIES][];
+        final float[][] frustums = new float[QUERIES][];
+        for (int q = 0; q < QUERIES; q++) {
+            boxes[q] = randomBox(random);
+            spheres[q] = randomSphere(random);
+            frustums[q] = randomFrustum(random);
+        }
+
+        final long buildStart = System.nanoTime();
+        final Octree built = new Octree(objLoader.positions);
+        final long buildNanos = System.nanoTime() - buildStart;
+
+        // Warm up before measuring
+        long checksum = 0;
+        for (int round = 0; round < 2; round++) {
+            for (int q = 0; q < QUERIES; q++) {
+                checksum += built.queryAabb(boxes[q][0], boxes[q][1], boxes[q][2], boxes[q][3], boxes[q][4], boxes[q][5], out);
+                checksum += built.querySphere(spheres[q][0], spheres[q][1], spheres[q][2], spheres[q][3], out);
+                checksum += built.queryFrustum(frustums[q], out);
+                checksum += linearAabb(boxes[q]).length + linearSphere(spheres[q]).length + linearFrustum(frustums[q]).length;
+            }
+        }
+
+        long aabbNanos = System.nanoTime();
+        for (int q = 0; q < QUERIES; q++) {
+            checksum += built.queryAabb(boxes[q][0], boxes[q][1], boxes[q][2], boxes[q][3], boxes[q][4], boxes[q][5], out);
+        }
+        aabbNanos = System.nanoTime() - aabbNanos;
+
+        long sphereNanos = System.nanoTime();
+        for (int q = 0; q < QUERIES; q++) {
+            checksum += built.querySphere(spheres[q][0], spheres[q][1], spheres[q][2], spheres[q][3], out);
+        }
+        sphereNanos = System.nanoTime() - sphereNanos;
+
+        long frustumNanos = System.nanoTime();
+        for (int q = 0; q < QUERIES; q++) {
+            checksum += built.queryFrustum(frustums[q], out);
+        }
+        frustumNanos = System.nanoTime() - frustumNanos;
+
+        long linearNanos = System.nanoTime();
+        for (int q = 0; q < QUERIES; q++) {
+            checksum += linearAabb(boxes[q]).length;
+        }
+        linearNanos = System.nanoTime() - linearNanos;
+
+        System.out.println(String.format("Octree over %d triangles, %d nodes, built in %.2f ms",
+                numTriangles, built.getNumNodes(), buildNanos / 1e6));
+        System.out.println(String.format("  AABB query    %8.1f us", aabbNanos / 1e3 / QUERIES));
+        System.out.println(String.format("  Sphere query  %8.1f us", sphereNanos / 1e3 / QUERIES));
+        System.out.println(String.format("  Frustum query %8.1f us", frustumNanos / 1e3 / QUERIES));
+        System.out.println(String.format("  Linear AABB   %8.1f us", linearNanos / 1e3 / QUERIES));
+        assertTrue(checksum > 0);
+        assertTrue("Octree AABB query slower than a linear scan", aabbNanos < linearNanos);
+    }
+
+    private float[] randomBox(Random random) {
+        final float[] box = new float[6];
+        for (int i = 0; i < 3; i++) {
+            final float size = sceneMax[i] - sceneMin[i];
+            final float center = sceneMin[i] + random.nextFloat() * size;
+            final float half = random.nextFloat() * 0.25f * size;
+            box[i] = center - half;
+            box[i + 3] = center + half;
+        }
+        return box;
+    }
+
+    private float[] randomSphere(Random random) {
+        final float[] sphere = new float[4];
+        float size = 0.0f;
+        for (int i = 0; i < 3; i++) {
+            sphere[i] = sceneMin[i] + random.nextFloat() * (sceneMax[i] - sceneMin[i]);
+            size = Math.max(size, sceneMax[i] - sceneMin[i]);
+        }
+        sphere[3] = random.nextFloat() * 0.25f * size;
+        return sphere;
+    }
+
+    /** Perspective looking down -z from a random point in front of the model. */
+    private float[] randomFrustum(Random random) {
+        final float[] mvp = perspective(0.5f + random.nextFloat(), 100.0f);
+        final float size = Math.max(sceneMax[0] - sceneMin[0], sceneMax[1] - sceneMin[1]);
+
+        // Translate the model so that a random part of it ends up in view
+        final float tx = -(sceneMin[0] + random.nextFloat() * (sceneMax[0] - sceneMin[0]));
+        final float ty = -(sceneMin[1] + random.nextFloat() * (sceneMax[1] - sceneMin[1]));
+        final float tz = -(sceneMax[2] + random.nextFloat() * size);
+        for (int i = 0; i < 4; i++) {
+            mvp[12 + i] += mvp[i] * tx + mvp[4 + i] * ty + mvp[8 + i] * tz;
+        }
+        return mvp;
+    }
+
+    /** Projection of android.opengl.Matrix.frustumM(-1, 1, -1, 1, near, far). */
+    private static float[] perspective(float near, float far) {
+        final float[] m = new float[16];
+        m[0] = near;
+        m[5] = near;
+        m[10] = (far + near) / (near - far);
+        m[11] = -1.0f;
+        m[14] = 2.0f * far * near / (near - far);
+        return m;
+    }
+
+    /** Two counter-clockwise triangles facing +z. */
+    private static float[] quad(float minX, float minY, float maxX, float maxY, float z) {
+        return new float[] {
+                minX, minY, z, maxX, minY, z, maxX, maxY, z,
+                minX, minY, z, maxX, maxY, z, minX, maxY, z};
+    }
+
+    private static int countTriangles(int[] ranges, int numRanges) {
+        int count = 0;
+        for (int r = 0; r < numRanges; r++) {
+            count += ranges[2 * r + 1];
+        }
+        return count;
+    }
+
+    private int[] linearAabb(float[] box) {
+        final int[] out = new int[numTriangles];
+        int count = 0;
+        for (int t = 0; t < numTriangles; t++) {
+            final float[] b = triangleBounds(t);
+            if (b[0] <= box[3] && b[3] >= box[0] && b[1] <= box[4] && b[4] >= box[1] && b[2] <= box[5] && b[5] >= box[2]) {
+                out[count++] = t;
+            }
+        }
+        return Arrays.copyOf(out, count);
+    }
+
+    private int[] linearSphere(float[] sphere) {
+        final int[] out = new int[numTriangles];
+        int count = 0;
+        for (int t = 0; t < numTriangles; t++) {
+            final float[] b = triangleBounds(t);
+            float distanceSquared = 0.0f;
+            for (int i = 0; i < 3; i++) {
+                final float d = sphere[i] - Math.max(b[i], Math.min(sphere[i], b[i + 3]));
+                distanceSquared += d * d;
+            }
+            if (distanceSquared <= sphere[3] * sphere[3]) {
+                out[count++] = t;
+            }
+        }
+        return Arrays.copyOf(out, count);
+    }
+
+    /** Triangles whose bounds are not completely outside one of the clip planes. */
+    private int[] linearFrustum(float[] m) {
+        final int[] out = new int[numTriangles];
+        int count = 0;
+        for (int t = 0; t < numTriangles; t++) {
+            final float[] b = triangleBounds(t);
+            boolean outside = false;
+            for (int plane = 0; plane < 6 && !outside; plane++) {
+                final int row = plane / 2;
+                final float sign = plane % 2 == 0 ? 1.0f : -1.0f;
+                boolean allOutside = true;
+                for (int corner = 0; corner < 8 && allOutside; corner++) {
+                    final float x = (corner & 1) == 0 ? b[0] : b[3];
+                    final float y = (corner & 2) == 0 ? b[1] : b[4];
+                    final float z = (corner & 4) == 0 ? b[2] : b[5];
+                    final float w = m[3] * x + m[7] * y + m[11] * z + m[15];
+                    final float v = m[row] * x + m[4 + row] * y + m[8 + row] * z + m[12 + row];
+                    allOutside = w + sign * v < 0.0f;
+                }
+                outside = allOutside;
+            }
+            if (!outside) {
+                out[count++] = t;
+            }
+        }
+        return Arrays.copyOf(out, count);
+    }
+
+    private float[] triangleBounds(int t) {
+        final float[] p = objLoader.positions;
+        final float[] b = new float[6];
+        for (int i = 0; i < 3; i++) {
+            b[i] = Math.min(p[t * 9 + i], Math.min(p[t * 9 + 3 + i], p[t * 9 + 6 + i]));
+            b[i + 3] = Math.max(p[t * 9 + i], Math.max(p[t * 9 + 3 + i], p[t * 9 + 6 + i]));
+        }
+        return b;
+    }
+
+    private static int[] sorted(int[] values, int count) {
+        final int[] copy = Arrays.copyOf(values, count);
+        Arrays.sort(copy);
+        return copy;
+    }
+}
@@ -0,0 +1,348 @@
+package com.example.firstapplication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Renders with the software rasterizer on the host, using the scene set up by GLRenderer.
+ *
+ * Run with -Dgolden.update=true to rewrite the golden images after an intended rendering change.
+ */
+public class SoftwareRasterizerTest {
+    private static final int WIDTH = 256;
+    private static final int HEIGHT = 256;
+    private static final String GOLDEN_DIR = "src/test/resources/golden";
+
+    private static final int YELLOW = 0xffffff00;
+    private static final int RED = 0xffff0000;
+
+    private ObjLoader objLoader;
+    private SoftwareRasterizer rasterizer;
+
+    private final float[] modelMatrix = new float[16];
+    private final float[] viewMatrix = new float[16];
+    private final float[] projectionMatrix = new float[16];
+    private final float[] mvMatrix = new float[16];
+    private final float[] mvpMatrix = new float[16];
+    private final float[] lightPosInEyeSpace = new float[4];
+
+    @Before
+    public void setUp() throws IOException {
+        objLoader = new ObjLoader(new FileInputStream("src/main/assets/laurel.obj"), "laurel.obj");
+
+        // Same camera and model transform as GLRenderer
+        setLookAtM(viewMatrix, 0.0f, 0.0f, 1.5f, 0.0f, 0.0f, -5.0f, 0.0f, 10.0f, 0.0f);
+        final float ratio = (float) WIDTH / HEIGHT;
+        frustumM(projectionMatrix, -ratio, ratio, -1.0f, 1.0f, 1.0f, 10.0f);
+        setIdentityM(modelMatrix);
+        modelMatrix[0] = 0.1f;
+        modelMatrix[5] = 0.1f;
+        modelMatrix[10] = 0.1f;
+
+        multiplyMM(mvMatrix, viewMatrix, modelMatrix);
+        multiplyMM(mvpMatrix, projectionMatrix, mvMatrix);
+
+        // Light of GLRenderer: translated to (1, 1, -2), then into eye space
+        final float[] lightModelMatrix = new float[16];
+        setIdentityM(lightModelMatrix);
+        lightModelMatrix[12] = 1.0f;
+        lightModelMatrix[13] = 1.0f;
+        lightModelMatrix[14] = -2.0f;
+        final float[] lightPosInWorldSpace = new float[4];
+        multiplyMV(lightPosInWorldSpace, lightModelMatrix, new float[] {0.0f, 0.0f, 0.0f, 1.0f});
+        multiplyMV(lightPosInEyeSpace, viewMatrix, lightPosInWorldSpace);
+    }
+
+    @After
+    public void tearDown() {
+        if (rasterizer != null) {
+            rasterizer.release();
+        }
+    }
+
+    @Test
+    public void frontFace_isDrawn_backFace_isCulled() {
+        rasterizer = new SoftwareRasterizer(64, 64, 2);
+        final float[] identity = new float[16];
+        setIdentityM(identity);
+
+        final float[] counterClockwise = {-0.5f, -0.5f, 0.0f, 0.5f, -0.5f, 0.0f, 0.0f, 0.5f, 0.0f};
+        rasterizer.drawTriangles(counterClockwise, null, identity, identity);
+        assertEquals(YELLOW, pixel(32, 32));
+        assertEquals(0.5f, rasterizer.getDepthBuffer()[32 * 64 + 32], 1e-6f);
+
+        rasterizer.clear();
+        final float[] clockwise = {-0.5f, -0.5f, 0.0f, 0.0f, 0.5f, 0.0f, 0.5f, -0.5f, 0.0f};
+        rasterizer.drawTriangles(clockwise, null, identity, identity);
+        assertEquals(0, SoftwareRasterizer.countDifferentPixels(cleared(64, 64), rasterizer.getColorBuffer(), 0));
+
+        rasterizer.setCullFace(false);
+        rasterizer.drawTriangles(clockwise, null, identity, identity);
+        assertEquals(YELLOW, pixel(32, 32));
+    }
+
+    @Test
+    public void nearerTriangle_passesDepthTest() {
+        rasterizer = new SoftwareRasterizer(64, 64, 2);
+        final float[] identity = new float[16];
+        setIdentityM(identity);
+
+        final float[] near = {-0.5f, -0.5f, -0.5f, 0.5f, -0.5f, -0.5f, 0.0f, 0.5f, -0.5f};
+        final float[] far = {-1.0f, -1.0f, 0.5f, 1.0f, -1.0f, 0.5f, 0.0f, 1.0f, 0.5f};
+
+        rasterizer.drawTriangles(near, null, identity, identity);
+        rasterizer.setColor(1.0f, 0.0f, 0.0f, 1.0f);
+        rasterizer.drawTriangles(far, null, identity, identity);
+
+        // The far triangle only shows around the near one
+        assertEquals(YELLOW, pixel(32, 32));
+        assertEquals(RED, pixel(32, 6));
+    }
+
+    @Test
+    public void sharedEdge_isDrawnOnce() {
+        rasterizer = new SoftwareRasterizer(64, 64, 1);
+        final float[] identity = new float[16];
+        setIdentityM(identity);
+
+        // Two triangles of a quad covering 32x32 pixels, with pixel centers right on the diagonal
+        final float[] first = {-0.5f, -0.5f, 0.0f, 0.5f, -0.5f, 0.0f, 0.5f, 0.5f, 0.0f};
+        final float[] second = {-0.5f, -0.5f, 0.0f, 0.5f, 0.5f, 0.0f, -0.5f, 0.5f, 0.0f};
+
+        rasterizer.drawTriangles(first, null, identity, identity);
+        final int firstCovered = coveredPixels();
+        rasterizer.clear();
+        rasterizer.drawTriangles(second, null, identity, identity);
+        final int secondCovered = coveredPixels();
+        rasterizer.drawTriangles(first, null, identity, identity);
+
+        assertEquals(32 * 32, firstCovered + secondCovered);
+        assertEquals(32 * 32, coveredPixels());
+    }
+
+    @Test(timeout = 30000)
+    public void laurel_isIndependentOfThreadCount() {
+        final SoftwareRasterizer single = new SoftwareRasterizer(WIDTH, HEIGHT, 1);
+        single.setLightPosition(lightPosInEyeSpace);
+        single.drawTriangles(objLoader.positions, objLoader.normals, mvMatrix, mvpMatrix);
+
+        rasterizer = new SoftwareRasterizer(WIDTH, HEIGHT, 4);
+        rasterizer.setLightPosition(lightPosInEyeSpace);
+        rasterizer.drawTriangles(objLoader.positions, objLoader.normals, mvMatrix, mvpMatrix);
+
+        assertArrayEquals(single.getColorBuffer(), rasterizer.getColorBuffer());
+        assertArrayEquals(single.getDepthBuffer(), rasterizer.getDepthBuffer(), 0.0f);
+    }
+
+    @Test(timeout = 30000)
+    public void laurel_matchesGoldenImage() throws IOException {
+        rasterizer = new SoftwareRasterizer(WIDTH, HEIGHT);
+        rasterizer.drawTriangles(objLoader.positions, objLoader.normals, mvMatrix, mvpMatrix);
+        assertGolden("laurel.ppm", rasterizer.getColorBuffer());
+    }
+
+    @Test(timeout = 30000)
+    public void laurelLit_matchesGoldenImage() throws IOException {
+        rasterizer = new SoftwareRasterizer(WIDTH, HEIGHT);
+        rasterizer.setLightPosition(lightPosInEyeSpace);
+        rasterizer.drawTriangles(objLoader.positions, objLoader.normals, mvMatrix, mvpMatrix);
+        assertGolden("laurel_lit.ppm", rasterizer.getColorBuffer());
+    }
+
+    @Test(timeout = 30000)
+    public void laurelLitFromEye_matchesGoldenImage() throws IOException {
+        // Closer framing and the light at the eye, so the diffuse term varies across the model
+        final float[] closeModelMatrix = new float[16];
+        setIdentityM(closeModelMatrix);
+        closeModelMatrix[0] = 0.3f;
+        closeModelMatrix[5] = 0.3f;
+        closeModelMatrix[10] = 0.3f;
+
+        final float[] closeMvMatrix = new float[16];
+        final float[] closeMvpMatrix = new float[16];
+        multiplyMM(closeMvMatrix, viewMatrix, closeModelMatrix);
+        multiplyMM(closeMvpMatrix, projectionMatrix, closeMvMatrix);
+
+        rasterizer = new SoftwareRasterizer(WIDTH, HEIGHT);
+        rasterizer.setLightPosition(new float[] {0.0f, 0.0f, 0.0f});
+        rasterizer.drawTriangles(objLoader.positions, objLoader.normals, closeMvMatrix, closeMvpMatrix);
+        assertGolden("laurel_lit_front.ppm", rasterizer.getColorBuffer());
+    }
+
+    private int pixel(int x, int y) {
+        return rasterizer.getColorBuffer()[y * rasterizer.getWidth() + x];
+    }
+
+    private int coveredPixels() {
+        return SoftwareRasterizer.countDifferentPixels(cleared(rasterizer.getWidth(), rasterizer.getHeight()), rasterizer.getColorBuffer(), 0);
+    }
+
+    private static int[] cleared(int width, int height) {
+        final SoftwareRasterizer empty = new SoftwareRasterizer(width, height, 1);
+        return empty.getColorBuffer();
+    }
+
+    private void assertGolden(String name, int[] pixels) throws IOException {
+        final File file = new File(GOLDEN_DIR, name);
+        if (Boolean.getBoolean("golden.update")) {
+            file.getParentFile().mkdirs();
+            writePpm(file, pixels, WIDTH, HEIGHT);
+            return;
+        }
+
+        final InputStream stream = getClass().getResourceAsStream("/golden/" + name);
+        assertNotNull("Missing golden image " + name, stream);
+        final int[] golden = readPpm(stream, WIDTH, HEIGHT);
+
+        // Allow rounding differences only, alpha is not stored in the golden image
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] |= 0xff000000;
+        }
+        assertEquals(0, SoftwareRasterizer.countDifferentPixels(golden, pixels, 1));
+    }
+
+    private static void writePpm(File file, int[] pixels, int width, int height) throws IOException {
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            out.write(("P6\n" + width + " " + height + "\n255\n").getBytes(Charset.forName("US-ASCII")));
+            for (int pixel : pixels) {
+                out.write((pixel >> 16) & 0xff);
+                out.write((pixel >> 8) & 0xff);
+                out.write(pixel & 0xff);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int[] readPpm(InputStream stream, int width, int height) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        try {
+            final String header = "P6\n" + width + " " + height + "\n255\n";
+            final byte[] headerBytes = new byte[header.length()];
+            in.readFully(headerBytes);
+            assertEquals(header, new String(headerBytes, Charset.forName("US-ASCII")));
+
+            final int[] pixels = new int[width * height];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = 0xff000000 | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+            }
+            return pixels;
+        } finally {
+            in.close();
+        }
+    }
+
+    // Column-major matrix helpers with the same results as android.opengl.Matrix,
+    // which only exists as a stub in local unit tests
+
+    private static void setIdentityM(float[] m) {
+        for (int i = 0; i < 16; i++) {
+            m[i] = i % 5 == 0 ? 1.0f : 0.0f;
+        }
+    }
+
+    private static void multiplyMM(float[] result, float[] lhs, float[] rhs) {
+        final float[] tmp = new float[16];
+        for (int col = 0; col < 4; col++) {
+            for (int row = 0; row < 4; row++) {
+                float sum = 0.0f;
+                for (int k = 0; k < 4; k++) {
+                    sum += lhs[k * 4 + row] * rhs[col * 4 + k];
+                }
+                tmp[col * 4 + row] = sum;
+            }
+        }
+        System.arraycopy(tmp, 0, result, 0, 16);
+    }
+
+    private static void multiplyMV(float[] result, float[] lhs, float[] rhs) {
+        for (int row = 0; row < 4; row++) {
+            result[row] = lhs[row] * rhs[0] + lhs[4 + row] * rhs[1] + lhs[8 + row] * rhs[2] + lhs[12 + row] * rhs[3];
+        }
+    }
+
+    private static void frustumM(float[] m, float left, float right, float bottom, float top, float near, float far) {
+        final float rWidth = 1.0f / (right - left);
+        final float rHeight = 1.0f / (top - bottom);
+        final float rDepth = 1.0f / (near - far);
+        final float x = 2.0f * (near * rWidth);
+        final float y = 2.0f * (near * rHeight);
+        final float a = (right + left) * rWidth;
+        final float b = (top + bottom) * rHeight;
+        final float c = (far + near) * rDepth;
+        final float d = 2.0f * (far * near * rDepth);
+
+        for (int i = 0; i < 16; i++) {
+            m[i] = 0.0f;
+        }
+        m[0] = x;
+        m[5] = y;
+        m[8] = a;
+        m[9] = b;
+        m[10] = c;
+        m[11] = -1.0f;
+        m[14] = d;
+    }
+
+    private static void setLookAtM(float[] m, float eyeX, float eyeY, float eyeZ,
+                                   float centerX, float centerY, float centerZ, float upX, float upY, float upZ) {
+        float fx = centerX - eyeX;
+        float fy = centerY - eyeY;
+        float fz = centerZ - eyeZ;
+        final float rlf = 1.0f / (float) Math.sqrt(fx * fx + fy * fy + fz * fz);
+        fx *= rlf;
+        fy *= rlf;
+        fz *= rlf;
+
+        // s = f x up
+        float sx = fy * upZ - fz * upY;
+        float sy = fz * upX - fx * upZ;
+        float sz = fx * upY - fy * upX;
+        final float rls = 1.0f / (float) Math.sqrt(sx * sx + sy * sy + sz * sz);
+        sx *= rls;
+        sy *= rls;
+        sz *= rls;
+
+        // u = s x f
+        final float ux = sy * fz - sz * fy;
+        final float uy = sz * fx - sx * fz;
+        final float uz = sx * fy - sy * fx;
+
+        m[0] = sx;
+        m[1] = ux;
+        m[2] = -fx;
+        m[3] = 0.0f;
+        m[4] = sy;
+        m[5] = uy;
+        m[6] = -fy;
+        m[7] = 0.0f;
+        m[8] = sz;
+        m[9] = uz;
+        m[10] = -fz;
+        m[11] = 0.0f;
+        m[12] = 0.0f;
+        m[13] = 0.0f;
+        m[14] = 0.0f;
+        m[15] = 1.0f;
+
+        // Translate by -eye
+        for (int i = 0; i < 4; i++) {
+            m[12 + i] += m[i] * -eyeX + m[4 + i] * -eyeY + m[8 + i] * -eyeZ;
+        }
+    }
+}